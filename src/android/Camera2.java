@@ -13,12 +13,17 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Display;
 import android.view.Surface;
@@ -32,17 +37,53 @@ import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class Camera2 {
 	public final static String OPEN_FAILED_ERROR = "OPEN_FAILED_ERROR";
 	public final static String SESSION_CONFIGURATION_ERROR = "SESSION_CONFIGURATION_ERROR";
 	public final static String CAMERA_ACCESS_ERROR = "CAMERA_ACCESS_ERROR";
+	public final static String CAMERA_CLOSED_ERROR = "CAMERA_CLOSED_ERROR";
+	public final static String CAPTURE_FAILED_ERROR = "CAPTURE_FAILED_ERROR";
+	public final static String CAMERA_DEVICE_ERROR = "CAMERA_DEVICE_ERROR";
+	public final static String CAMERA_DISABLED_ERROR = "CAMERA_DISABLED_ERROR";
+	public final static String CAMERA_IN_USE_ERROR = "CAMERA_IN_USE_ERROR";
+	public final static String CAMERA_SERVICE_ERROR = "CAMERA_SERVICE_ERROR";
+	public final static String MAX_CAMERAS_IN_USE_ERROR = "MAX_CAMERAS_IN_USE_ERROR";
+	public final static String SNAPSHOT_DISABLED_ERROR = "SNAPSHOT_DISABLED_ERROR";
+	public final static String QUALITY_ANALYSIS_DISABLED_ERROR = "QUALITY_ANALYSIS_DISABLED_ERROR";
+	public final static String UNSUPPORTED_SIZE_ERROR = "UNSUPPORTED_SIZE_ERROR";
+	public final static String UNKNOWN_ERROR = "UNKNOWN_ERROR";
+
+	public final static String EVENT_OPENED = "opened";
+	public final static String EVENT_CLOSED = "closed";
+	public final static String EVENT_DISCONNECTED = "disconnected";
+	public final static String EVENT_ERROR = "error";
+	public final static String EVENT_SESSION_CONFIGURED = "sessionConfigured";
+	public final static String EVENT_SESSION_CLOSED = "sessionClosed";
+	public final static String EVENT_SURFACE_CREATED = "surfaceCreated";
+	public final static String EVENT_SURFACE_DESTROYED = "surfaceDestroyed";
+	public final static String EVENT_CAPTURE_FAILED = "captureFailed";
+
+	public final static String FLASH_MODE_OFF = "off";
+	public final static String FLASH_MODE_ON = "on";
+	public final static String FLASH_MODE_AUTO = "auto";
+
+	private final static String TAG = "Camera2";
 
 	public abstract static class StateCallback{
+		/**
+		 * Open failed, called at most once and never after onOpen. Later errors go to the EventListener.
+		 */
 		public abstract void onError(String code, String message);
 		public abstract void onOpen() throws CameraAccessException;
 		public abstract void onClose();
@@ -50,7 +91,19 @@ public class Camera2 {
 
 	public static abstract class ShootCallback {
 		public abstract void onError(String code, String message);
-		public abstract void onShoot(Image image);
+		/**
+		 * @param quality Scores of the companion analysis frame, null if analysis is disabled.
+		 */
+		public abstract void onShoot(Image image, QualityMetrics quality);
+	}
+
+	public static abstract class ConfigureCallback {
+		public abstract void onError(String code, String message);
+		public abstract void onConfigured();
+	}
+
+	public interface EventListener {
+		void onEvent(@NonNull String type, String code, String message);
 	}
 
 	public interface PreviewStateCallback {
@@ -63,18 +116,22 @@ public class Camera2 {
 		protected final static class PreviewStateCallbackSet extends HashSet<PreviewStateCallback> implements PreviewStateCallback{
 			@Override
 			public void onSurfaceCreated(@NonNull Preview preview){
-				for(PreviewStateCallback callback : this) callback.onSurfaceCreated(preview);
+				// copied, callbacks remove themselves while being called
+				for(PreviewStateCallback callback : new ArrayList<>(this)) callback.onSurfaceCreated(preview);
 			};
 			@Override
 			public void onSurfaceDestroyed(@NonNull Preview preview){
-				for(PreviewStateCallback callback : this) callback.onSurfaceDestroyed(preview);
+				// copied, callbacks remove themselves while being called
+				for(PreviewStateCallback callback : new ArrayList<>(this)) callback.onSurfaceDestroyed(preview);
 			};
 			@Override
 			public void onSurfaceReady(@NonNull Preview preview){
-				for(PreviewStateCallback callback : this) callback.onSurfaceReady(preview);
+				// copied, callbacks remove themselves while being called
+				for(PreviewStateCallback callback : new ArrayList<>(this)) callback.onSurfaceReady(preview);
 			};
 		}
 		protected final PreviewStateCallbackSet stateCallbacks = new PreviewStateCallbackSet();
+		protected int sensorOrientation = 0;
 
 		public void addStateCallback(PreviewStateCallback callback){
 			stateCallbacks.add(callback);
@@ -86,35 +143,132 @@ public class Camera2 {
 		};
 
 		protected void onAddState(PreviewStateCallback callback){};
+		/**
+		 * Sensor orientation in degrees, lets a preview follow later display rotations on its own.
+		 */
+		public void setSensorOrientation(int sensorOrientation){
+			this.sensorOrientation = sensorOrientation;
+		}
 		public abstract Surface getSurface();
 		public abstract Size getSize();
 		public abstract void setCameraSize(Size size, boolean rotated);
+		/**
+		 * Resizes the visible preview, the camera stream keeps its size.
+		 */
+		public abstract void setSize(Size size);
 		public abstract Class getPreviewClass();
 	}
 
+	private static final class PendingShot{
+		final Size size;
+		final ShootCallback callback;
+		final boolean snapshot;
+
+		PendingShot(Size size, ShootCallback callback, boolean snapshot){
+			this.size = size;
+			this.callback = callback;
+			this.snapshot = snapshot;
+		}
+	}
+
 	private final String cameraId;
 	private final CameraCharacteristics characteristics;
 	private final Context context;
+	// camera callbacks and the repeating request builder live on the main thread, the plugin calls come from anywhere
+	private final Handler handler = new Handler(Looper.getMainLooper());
 	private final ConcurrentLinkedQueue<ShootCallback> shootQueue = new ConcurrentLinkedQueue<>();
+	// the YUV outputs deliver at frame rate, their listeners and the frame copies run on this thread
+	private HandlerThread frameThread = null;
+	private Handler frameHandler = null;
 
 	private CameraDevice cameraDevice = null;
 	private CameraCaptureSession session = null;
 	private StateCallback stateCallback = null;
+	private EventListener eventListener = null;
 	private boolean opened = false;
+	// open has not resolved yet, errors after that only go to the event listener
+	private boolean openPending = false;
 	private Preview preview = null;
+	// the active still output, pictureReaders holds every still output wanted in the session
 	private ImageReader imageReader = null;
+	private final LinkedHashMap<Size, ImageReader> pictureReaders = new LinkedHashMap<>();
+	private final HashSet<Size> pictureSizes = new HashSet<>();
+	private List<ImageReader> sessionReaders = new ArrayList<>();
+	private boolean configuring = false;
+	private boolean reconfigurePending = false;
+	// the output active before a reconfiguration, restored if the new session can not be configured
+	private ImageReader rollbackReader = null;
+	private final ArrayList<ConfigureCallback> configureCallbacks = new ArrayList<>();
+	// shots waiting for the session, touched on the main thread only
+	private final ArrayDeque<PendingShot> deferredShots = new ArrayDeque<>();
+	private volatile ImageReader analysisReader = null;
+	private boolean snapshotEnabled = false;
+	private ImageReader snapshotReader = null;
+	private final ConcurrentLinkedQueue<ShootCallback> snapshotQueue = new ConcurrentLinkedQueue<>();
+	// stream size of the preview as the sensor produces it
+	private Size previewCameraSize = null;
+	// JPEG and analysis frames of one capture share the sensor timestamp, whichever comes first waits here.
+	// Both streams deliver in capture order, so a frame of one stream also settles older ones of the other.
+	private final TreeMap<Long, Image> pendingPictures = new TreeMap<>();
+	private final TreeMap<Long, QualityMetrics> pendingMetrics = new TreeMap<>();
+	private final HashSet<Long> lostMetrics = new HashSet<>();
+
+	// preview controls, written from the plugin at gesture rate and applied at most once per frame
+	private volatile float zoom = 1;
+	private volatile boolean torch = false;
+	private volatile String flashMode = FLASH_MODE_OFF;
+	private final AtomicBoolean controlsChanged = new AtomicBoolean(false);
+	private CaptureRequest.Builder previewRequestBuilder = null;
+	// a flash shot waits for the AE precapture sequence, watched on the repeating preview results
+	private static final long PRECAPTURE_TIMEOUT_MS = 1000;
+	private ShootCallback precaptureShot = null;
+	private boolean precaptureTriggered = false;
+	// AE has been seen metering for the flash, the still waits for it to finish
+	private boolean precaptureMetering = false;
+	private final Runnable precaptureTimeout = new Runnable() {
+		@Override
+		public void run() {
+			Logger.w(TAG, "AE precapture timed out");
+			finishPrecapture();
+		}
+	};
+	private final CameraCaptureSession.CaptureCallback previewCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureCompleted(@NonNull CameraCaptureSession _session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+			if(precaptureShot != null && precaptureTriggered){
+				// AE first has to enter the sequence, some HALs get there a few frames late, then leave it.
+				// Without an AE state there is nothing to wait for but the timeout.
+				Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+				if(aeState != null){
+					if(!precaptureMetering){
+						precaptureMetering = aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE
+							|| aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+					} else if(aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE){
+						finishPrecapture();
+					}
+				}
+			}
+			if(controlsChanged.getAndSet(false)) updatePreviewRequest();
+		}
+	};
 	private final PreviewStateCallback startPreviewCallback = new PreviewStateCallback(){
 		@Override
 		public void onSurfaceReady(@NonNull Preview preview){
-			Log.e("TEMP", "DEBUG SurfaceHolder.Callback onSurfaceReady");
+			Logger.d(TAG, "startPreviewCallback onSurfaceReady");
 			try {
-				CaptureRequest.Builder previewCaptureRequest = session.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+				previewRequestBuilder = session.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
 
-				previewCaptureRequest.addTarget(preview.getSurface());
+				previewRequestBuilder.addTarget(preview.getSurface());
+				if(snapshotReader != null){
+					previewRequestBuilder.addTarget(snapshotReader.getSurface());
+				}
 
-				session.setRepeatingRequest(previewCaptureRequest.build(), null, null);
+				controlsChanged.set(false);
+				applyControls(previewRequestBuilder);
+				session.setRepeatingRequest(previewRequestBuilder.build(), previewCaptureCallback, handler);
 			} catch (CameraAccessException e) {
-				e.printStackTrace();
+				Logger.e(TAG, "Can not start preview", e);
+				emit(EVENT_ERROR, CAMERA_ACCESS_ERROR, e.getMessage());
 			}
 		}
 		
@@ -123,6 +277,17 @@ public class Camera2 {
 		@Override
 		public void onSurfaceDestroyed(@NonNull Preview preview) {}
 	};
+	private final PreviewStateCallback surfaceEventCallback = new PreviewStateCallback(){
+		@Override
+		public void onSurfaceCreated(@NonNull Preview preview) {
+			emit(EVENT_SURFACE_CREATED, null, null);
+		}
+
+		@Override
+		public void onSurfaceDestroyed(@NonNull Preview preview) {
+			emit(EVENT_SURFACE_DESTROYED, null, null);
+		}
+	};
 
 	public static CameraAccessException cameraInUseException(){
 		int code;
@@ -148,8 +313,19 @@ public class Camera2 {
 		this.preview = preview;
 	}
 
+	public void setEventListener(EventListener eventListener){
+		this.eventListener = eventListener;
+	}
+
+	private void emit(@NonNull String type, String code, String message){
+		if(eventListener != null) eventListener.onEvent(type, code, message);
+	}
+
+	/**
+	 * Display rotation in degrees, the same units as SENSOR_ORIENTATION.
+	 */
 	private int displayRotation(){
-		return ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation();
+		return ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation() * 90;
 	}
 
 	public boolean rotated(){
@@ -185,28 +361,321 @@ public class Camera2 {
 
 		if(minPreviewSize == null){
 			// throw new Exception("Unsupported preview size");
-			Log.e("TMP", "Unsupported preview size");
+			Logger.w(TAG, "Unsupported preview size");
 			return;
 		}
 
-		preview.setCameraSize(minPreviewSize, rotated(screenOrientation));
+		boolean rotated = rotated(screenOrientation);
+		previewCameraSize = rotated ? new Size(minPreviewSize.getHeight(), minPreviewSize.getWidth()) : minPreviewSize;
+		preview.setSensorOrientation(characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION));
+		preview.setCameraSize(minPreviewSize, rotated);
+	}
+
+	/**
+	 * Registers still outputs which are configured in the session up front, so switching
+	 * between them with setPicture needs no reconfiguration. Has to be called before open.
+	 * If the hardware can not stream them all, the session falls back to the active one.
+	 */
+	public void setPictureSizes(@NonNull List<Size> sizes){
+		pictureSizes.clear();
+		for(Size size : sizes){
+			Size pictureSize = getPictureSize(size);
+			if(pictureSize == null){
+				Logger.w(TAG, "Unsupported picture size " + size);
+				continue;
+			}
+
+			pictureSizes.add(pictureSize);
+			if(!pictureReaders.containsKey(pictureSize)) pictureReaders.put(pictureSize, createPictureReader(pictureSize));
+		}
+	}
+
+	/**
+	 * Finds the JPEG output for a size, which may be given in display orientation as getSupportedSizes returns it.
+	 *
+	 * @return The size in sensor orientation, null if the camera has no such JPEG output.
+	 */
+	public Size getPictureSize(@NonNull Size size){
+		StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		Size[] sizes = configs.getOutputSizes(ImageFormat.JPEG);
+		if(sizes == null) return null;
+
+		Size rotatedSize = new Size(size.getHeight(), size.getWidth());
+		Size pictureSize = null;
+		for(Size jpegSize : sizes){
+			if(jpegSize.equals(size)) return jpegSize;
+			if(jpegSize.equals(rotatedSize)) pictureSize = jpegSize;
+		}
+
+		return pictureSize;
 	}
 
 	public void setPicture(@NonNull Size size){
-		imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.JPEG, 5);
+		setPicture(size, null);
+	}
+
+	/**
+	 * Selects the still output. On a live camera the session is reconfigured in place
+	 * when the output is not configured yet, the device stays open and the preview resumes.
+	 * If the new session can not be configured the previous output and session are restored.
+	 * Has to be called on the main thread.
+	 *
+	 * @param callback Called once the output can be used or with why it can not, may be null.
+	 */
+	public void setPicture(@NonNull Size size, ConfigureCallback callback){
+		Size pictureSize = getPictureSize(size);
+		if(pictureSize == null){
+			if(callback != null) callback.onError(UNSUPPORTED_SIZE_ERROR, "Unsupported picture size");
+			else Logger.w(TAG, "Unsupported picture size " + size);
+			return;
+		}
+
+		if(imageReader != null && imageReader.getWidth() == pictureSize.getWidth() && imageReader.getHeight() == pictureSize.getHeight()){
+			if(callback != null){
+				if(configuring) configureCallbacks.add(callback);
+				else callback.onConfigured();
+			}
+			return;
+		}
+
+		ImageReader previous = imageReader;
+		ImageReader reader = pictureReaders.get(pictureSize);
+		if(reader == null){
+			reader = createPictureReader(pictureSize);
+			pictureReaders.put(pictureSize, reader);
+		}
+		imageReader = reader;
+
+		if(previous != null){
+			Size previousSize = new Size(previous.getWidth(), previous.getHeight());
+			// not closed here, captures in flight on the current session still deliver into it
+			if(!pictureSizes.contains(previousSize)) pictureReaders.remove(previousSize);
+		}
+
+		if(configuring || (session != null && !sessionReaders.contains(reader))){
+			if(rollbackReader == null) rollbackReader = previous;
+			if(callback != null) configureCallbacks.add(callback);
+			reconfigure();
+		} else if(callback != null){
+			callback.onConfigured();
+		}
+	}
+
+	/**
+	 * Makes the output active before the failed reconfiguration active again.
+	 *
+	 * @return False if there is nothing to go back to.
+	 */
+	private boolean rollbackPicture(){
+		if(rollbackReader == null) return false;
+
+		ImageReader failed = imageReader;
+		imageReader = rollbackReader;
+		rollbackReader = null;
+		pictureReaders.put(new Size(imageReader.getWidth(), imageReader.getHeight()), imageReader);
+
+		if(failed != null && failed != imageReader){
+			Size failedSize = new Size(failed.getWidth(), failed.getHeight());
+			if(!pictureSizes.contains(failedSize)) pictureReaders.remove(failedSize);
+		}
+
+		return true;
+	}
+
+	private void resolveConfigureCallbacks(String code, String message){
+		ArrayList<ConfigureCallback> callbacks = new ArrayList<>(configureCallbacks);
+		configureCallbacks.clear();
+		for(ConfigureCallback callback : callbacks){
+			if(code == null) callback.onConfigured();
+			else callback.onError(code, message);
+		}
+	}
+
+	private ImageReader createPictureReader(@NonNull Size size){
+		ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.JPEG, 5);
 
 		imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener(){
 			public void onImageAvailable(ImageReader reader){
+				Image image = reader.acquireNextImage();
+				if(image == null) return;
+
+				long timestamp = image.getTimestamp();
+				// analysis frames of older pictures which never got theirs are not needed anymore
+				pendingMetrics.headMap(timestamp).clear();
+
+				if(analysisReader == null || lostMetrics.remove(timestamp)){
+					deliverPicture(image, null);
+					return;
+				}
+
+				QualityMetrics metrics = pendingMetrics.remove(timestamp);
+				if(metrics != null){
+					deliverPicture(image, metrics);
+				} else {
+					pendingPictures.put(image.getTimestamp(), image);
+				}
+			}
+		}, handler);
+
+		return imageReader;
+	}
+
+	/**
+	 * Adds a small YUV output which is captured together with every picture and used to score it.
+	 * Has to be called before open.
+	 */
+	public boolean hasQualityAnalysis(){
+		return analysisReader != null;
+	}
+
+	public void setQualityAnalysis(boolean enabled){
+		if(!enabled){
+			analysisReader = null;
+			return;
+		}
+
+		Size size = getAnalysisSize();
+		if(size == null){
+			Logger.w(TAG, "Unsupported analysis size");
+			return;
+		}
+
+		analysisReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 2);
+		analysisReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener(){
+			public void onImageAvailable(ImageReader reader){
+				Image image = reader.acquireNextImage();
+				if(image == null) return;
+
+				long timestamp = image.getTimestamp();
+				QualityMetrics metrics = QualityMetrics.fromImage(image);
+				image.close();
+
+				// scored here, paired with the picture on the main thread where the pictures wait
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						onAnalysis(timestamp, metrics);
+					}
+				});
+			}
+		}, frameHandler());
+	}
+
+	/**
+	 * Adds a preview sized YUV output for takeSnapshot. It streams with the repeating preview
+	 * request, so a snapshot waits at most one frame interval. Has to be called before open.
+	 */
+	public void setSnapshot(boolean enabled){
+		snapshotEnabled = enabled;
+		if(!enabled) snapshotReader = null;
+	}
+
+	private void createSnapshotReader(){
+		Size size = null;
+		if(previewCameraSize != null){
+			StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+			Size[] sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+			if(sizes != null){
+				for(Size yuvSize : sizes){
+					if(yuvSize.equals(previewCameraSize)) size = yuvSize;
+				}
+			}
+		}
+		if(size == null) size = getAnalysisSize();
+		if(size == null){
+			Logger.w(TAG, "Unsupported snapshot size");
+			return;
+		}
+
+		snapshotReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 2);
+		snapshotReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener(){
+			public void onImageAvailable(ImageReader reader){
+				// every preview frame lands here, frames nobody asked for are dropped right away
 				Image image = reader.acquireLatestImage();
-	
-				ShootCallback callback = shootQueue.poll();
+				if(image == null) return;
+
+				ShootCallback callback = snapshotQueue.poll();
 				if(callback != null){
-					callback.onShoot(image);
+					callback.onShoot(image, analysisReader != null ? QualityMetrics.fromImage(image) : null);
 				}
-	
+
 				image.close();
 			}
-		}, null);
+		}, frameHandler());
+	}
+
+	private synchronized Handler frameHandler(){
+		if(frameThread == null){
+			frameThread = new HandlerThread(TAG + "Frames");
+			frameThread.start();
+			frameHandler = new Handler(frameThread.getLooper());
+		}
+
+		return frameHandler;
+	}
+
+	/**
+	 * Closes a YUV output on the thread its listener runs on, so no frame is in use when it goes.
+	 */
+	private void closeFrameReader(@NonNull ImageReader reader){
+		frameHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				reader.close();
+			}
+		});
+	}
+
+	private Size getAnalysisSize(){
+		StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		Size[] sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+		if(sizes == null) return null;
+
+		Size analysisSize = null;
+		for(Size size : sizes){
+			if(size.getWidth() < 320 || size.getHeight() < 240) continue;
+
+			if(analysisSize == null || analysisSize.getWidth() * analysisSize.getHeight() > size.getWidth() * size.getHeight()){
+				analysisSize = size;
+			}
+		}
+
+		return analysisSize;
+	}
+
+	private void onAnalysis(long timestamp, QualityMetrics metrics){
+		// older pictures still waiting have lost their analysis frame, they go without scores
+		while(!pendingPictures.isEmpty() && pendingPictures.firstKey() < timestamp){
+			deliverPicture(pendingPictures.pollFirstEntry().getValue(), null);
+		}
+
+		Image picture = pendingPictures.remove(timestamp);
+		if(picture != null){
+			deliverPicture(picture, metrics);
+		} else {
+			pendingMetrics.put(timestamp, metrics);
+		}
+	}
+
+	/**
+	 * The analysis buffer of a capture is lost, its picture is delivered without scores.
+	 */
+	private void onAnalysisLost(long timestamp){
+		Image picture = pendingPictures.remove(timestamp);
+		if(picture != null){
+			deliverPicture(picture, null);
+		} else {
+			lostMetrics.add(timestamp);
+		}
+	}
+
+	private void deliverPicture(Image image, QualityMetrics metrics){
+		ShootCallback callback = shootQueue.poll();
+		if(callback != null){
+			callback.onShoot(image, metrics);
+		}
+
+		image.close();
 	}
 
 	public void open(@NonNull StateCallback stateCallback){
@@ -216,7 +685,9 @@ public class Camera2 {
 		}
 
 		this.stateCallback = stateCallback;
+		openPending = true;
 		if(preview != null){
+			preview.addStateCallback(surfaceEventCallback);
 			preview.addStateCallback(new PreviewStateCallback(){
 				@Override
 				public void onSurfaceCreated(@NonNull Preview preview) {
@@ -225,8 +696,8 @@ public class Camera2 {
 						setPreviewCameraSize();
 						openCamera();
 					} catch (CameraAccessException e) {
-						e.printStackTrace();
-						stateCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
+						Logger.e(TAG, "Can not open camera", e);
+						failOpen(CAMERA_ACCESS_ERROR, e.getMessage());
 					}
 				}
 
@@ -241,7 +712,7 @@ public class Camera2 {
 
 	private void openCamera(){
 		if (ActivityCompat.checkSelfPermission(context, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-			stateCallback.onError(OPEN_FAILED_ERROR, "Permission not granted");
+			failOpen(OPEN_FAILED_ERROR, "Permission not granted");
 			return;
 		}
 		try{
@@ -250,98 +721,349 @@ public class Camera2 {
 				@Override
 				public void onOpened(@NonNull CameraDevice _cameraDevice) {
 					cameraDevice = _cameraDevice;
+					emit(EVENT_OPENED, null, null);
 					try {
-						Log.e("TEMP", "DEBUG CameraDevice.StateCallback onOpened");
-						createSession();
+						createSession(true);
 					} catch (CameraAccessException e) {
-						stateCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
+						failOpen(CAMERA_ACCESS_ERROR, e.getMessage());
 					}
 				}
 		
 				@Override
 				public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-					Log.e("TEMP", "DEBUG CameraDevice.StateCallback onDisconnected");
+					emit(EVENT_DISCONNECTED, null, null);
 					close();
 				}
 		
 				@Override
 				public void onClosed(@NonNull CameraDevice cameraDevice) {
-					Log.e("TEMP", "DEBUG CameraDevice.StateCallback onClosed");
+					closeReaders();
+					emit(EVENT_CLOSED, null, null);
 					stateCallback.onClose();
 				}
 		
 				@Override
 				public void onError(@NonNull CameraDevice cameraDevice, int i) {
-					Log.e("TEMP", "DEBUG CameraDevice.StateCallback onError");
+					String code = UNKNOWN_ERROR;
 					String message = "Unknown error";
 		
 					switch (i) {
 						case CameraDevice.StateCallback.ERROR_CAMERA_DEVICE:
+							code = CAMERA_DEVICE_ERROR;
 							message = "Camera device has encountered a fatal error";
 							break;
 						case CameraDevice.StateCallback.ERROR_CAMERA_DISABLED:
+							code = CAMERA_DISABLED_ERROR;
 							message = "Camera device could not be opened due to a device policy";
 							break;
 						case CameraDevice.StateCallback.ERROR_CAMERA_IN_USE:
+							code = CAMERA_IN_USE_ERROR;
 							message = "Camera device is in use already";
 							break;
 						case CameraDevice.StateCallback.ERROR_CAMERA_SERVICE:
+							code = CAMERA_SERVICE_ERROR;
 							message = "Camera service has encountered a fatal error";
 							break;
 						case CameraDevice.StateCallback.ERROR_MAX_CAMERAS_IN_USE:
+							code = MAX_CAMERAS_IN_USE_ERROR;
 							message = "Camera device could not be opened because there are too many other open camera devices";
 							break;
 					}
 		
-					stateCallback.onError(OPEN_FAILED_ERROR, message);
+					emit(EVENT_ERROR, code, message);
+					failOpen(code, message);
 					close();
 				}
-			}, null);
+			}, handler);
 		} catch (CameraAccessException e) {
-			stateCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
+			failOpen(CAMERA_ACCESS_ERROR, e.getMessage());
 		}
 	}
 
+	/**
+	 * Rejects open, once it has resolved the error is only reported as EVENT_ERROR.
+	 */
+	private void failOpen(String code, String message){
+		if(!openPending) return;
+
+		openPending = false;
+		stateCallback.onError(code, message);
+	}
+
 	public void close() {
-		preview.removeStateCallback(startPreviewCallback);
-		cameraDevice.close();
+		if(preview != null){
+			preview.removeStateCallback(startPreviewCallback);
+			preview.removeStateCallback(surfaceEventCallback);
+		}
+		if(cameraDevice != null){
+			cameraDevice.close();
+			cameraDevice = null;
+		} else {
+			// nothing was opened yet, so CameraDevice.StateCallback.onClosed will never come
+			closeReaders();
+			if(opened && stateCallback != null) stateCallback.onClose();
+		}
+		opened = false;
+		previewRequestBuilder = null;
+		handler.removeCallbacks(precaptureTimeout);
+		if(precaptureShot != null){
+			precaptureShot.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+			precaptureShot = null;
+		}
+		configuring = false;
+		reconfigurePending = false;
+		failOpen(CAMERA_CLOSED_ERROR, "Camera is closed");
+		resolveConfigureCallbacks(CAMERA_CLOSED_ERROR, "Camera is closed");
+
+		PendingShot shot;
+		while((shot = deferredShots.poll()) != null){
+			shot.callback.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+		}
+
+		ShootCallback shootCallback;
+		while((shootCallback = shootQueue.poll()) != null){
+			shootCallback.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+		}
+		while((shootCallback = snapshotQueue.poll()) != null){
+			shootCallback.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+		}
+
+		for(Image image : pendingPictures.values()) image.close();
+		pendingPictures.clear();
+		pendingMetrics.clear();
+		lostMetrics.clear();
+	}
+
+	/**
+	 * Releases every output, called once the device is closed and nothing streams into them anymore.
+	 */
+	private void closeReaders(){
+		for(ImageReader reader : pictureReaders.values()) reader.close();
+		pictureReaders.clear();
+		if(imageReader != null) imageReader.close();
+		imageReader = null;
+		if(rollbackReader != null) rollbackReader.close();
+		rollbackReader = null;
+		if(analysisReader != null) closeFrameReader(analysisReader);
+		analysisReader = null;
+		if(snapshotReader != null) closeFrameReader(snapshotReader);
+		snapshotReader = null;
+
+		synchronized(this){
+			if(frameThread != null){
+				// the reader closes posted above still run
+				frameThread.quitSafely();
+				frameThread = null;
+				frameHandler = null;
+			}
+		}
 	}
 
-	private void createSession() throws CameraAccessException {
-		ArrayList<Surface> targets = new ArrayList<>(2);
+	/**
+	 * Replaces the session with one for the current outputs, keeping the device open.
+	 * createCaptureSession closes the previous session after its captures in flight complete.
+	 */
+	private void reconfigure(){
+		if(cameraDevice == null) return;
+		if(configuring){
+			reconfigurePending = true;
+			return;
+		}
+
+		try {
+			createSession(false);
+		} catch (CameraAccessException e) {
+			// the current session is left as it is, only the output selection goes back
+			Logger.e(TAG, "Can not reconfigure session", e);
+			emit(EVENT_ERROR, CAMERA_ACCESS_ERROR, e.getMessage());
+			rollbackPicture();
+			failDeferredShots();
+			resolveConfigureCallbacks(CAMERA_ACCESS_ERROR, e.getMessage());
+		}
+	}
+
+	private void createSession(boolean initial) throws CameraAccessException {
+		if(snapshotEnabled && snapshotReader == null) createSnapshotReader();
+
+		ArrayList<ImageReader> readers = new ArrayList<>(pictureReaders.values());
+		ArrayList<Surface> targets = new ArrayList<>(readers.size() + 3);
 		if(preview != null){
 			targets.add(preview.getSurface());
 		}
-		if(imageReader != null){
-			targets.add(imageReader.getSurface());
+		for(ImageReader reader : readers){
+			targets.add(reader.getSurface());
+		}
+		if(analysisReader != null){
+			targets.add(analysisReader.getSurface());
+		}
+		if(snapshotReader != null){
+			targets.add(snapshotReader.getSurface());
 		}
 
+		configuring = true;
 		cameraDevice.createCaptureSession(targets, new CameraCaptureSession.StateCallback() {
 			@Override
 			public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-				Log.e("TEMP", "DEBUG CameraCaptureSession.StateCallback onConfigured");
+				configuring = false;
 				session = cameraCaptureSession;
-				try {
-					stateCallback.onOpen();
-				} catch (CameraAccessException e) {
-					stateCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
-					close();
+				sessionReaders = readers;
+				emit(EVENT_SESSION_CONFIGURED, null, null);
+
+				if(initial){
+					try {
+						stateCallback.onOpen();
+						openPending = false;
+					} catch (CameraAccessException e) {
+						failOpen(CAMERA_ACCESS_ERROR, e.getMessage());
+						close();
+						return;
+					}
+				} else {
+					updatePreviewRequest();
 				}
+
+				if(reconfigurePending){
+					reconfigurePending = false;
+					if(!sessionReaders.contains(imageReader)){
+						reconfigure();
+						return;
+					}
+				}
+
+				// the old session left the previous output open while it could be restored
+				if(rollbackReader != null && !pictureReaders.containsValue(rollbackReader)) rollbackReader.close();
+				rollbackReader = null;
+				resolveConfigureCallbacks(null, null);
+				processDeferredShots();
 			}
 
 			@Override
 			public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-				Log.e("TEMP", "DEBUG CameraCaptureSession.StateCallback onConfigureFailed");
-				stateCallback.onError(SESSION_CONFIGURATION_ERROR, "Session configuration error");
+				configuring = false;
+
+				// a live camera goes back to the outputs it had instead of being closed
+				if(!initial && rollbackPicture()){
+					Logger.w(TAG, "Can not configure the new picture output, restoring the previous one");
+					emit(EVENT_ERROR, SESSION_CONFIGURATION_ERROR, "Can not configure the picture output");
+					for(ImageReader reader : readers){
+						if(!pictureReaders.containsValue(reader)) reader.close();
+					}
+					failDeferredShots();
+					resolveConfigureCallbacks(SESSION_CONFIGURATION_ERROR, "Can not configure the picture output");
+					try {
+						createSession(false);
+						return;
+					} catch (CameraAccessException e) {
+						Logger.e(TAG, "Can not restore session", e);
+					}
+				}
+
+				if(pictureReaders.size() > 1 && imageReader != null){
+					Logger.w(TAG, "Can not configure all picture outputs, using the active one only");
+					pictureSizes.clear();
+					for(ImageReader reader : pictureReaders.values()){
+						if(reader != imageReader) reader.close();
+					}
+					pictureReaders.clear();
+					pictureReaders.put(new Size(imageReader.getWidth(), imageReader.getHeight()), imageReader);
+					try {
+						createSession(initial);
+						return;
+					} catch (CameraAccessException e) {
+						Logger.e(TAG, "Can not configure session", e);
+					}
+				}
+
+				// snapshots and analysis were asked for, they are given up only when even a single still output does not fit
+				if(snapshotReader != null || analysisReader != null){
+					if(snapshotReader != null){
+						Logger.w(TAG, "Can not configure the snapshot output, disabling snapshots");
+						if(previewRequestBuilder != null) previewRequestBuilder.removeTarget(snapshotReader.getSurface());
+						closeFrameReader(snapshotReader);
+						snapshotReader = null;
+						snapshotEnabled = false;
+						ShootCallback waiting;
+						while((waiting = snapshotQueue.poll()) != null){
+							waiting.onError(SNAPSHOT_DISABLED_ERROR, "Snapshots are disabled");
+						}
+						emit(EVENT_ERROR, SNAPSHOT_DISABLED_ERROR, "Snapshots are disabled, the camera can not stream them with the other outputs");
+					} else {
+						Logger.w(TAG, "Can not configure the analysis output, disabling quality analysis");
+						closeFrameReader(analysisReader);
+						analysisReader = null;
+						while(!pendingPictures.isEmpty()){
+							deliverPicture(pendingPictures.pollFirstEntry().getValue(), null);
+						}
+						emit(EVENT_ERROR, QUALITY_ANALYSIS_DISABLED_ERROR, "Quality analysis is disabled, the camera can not stream it with the other outputs");
+					}
+					try {
+						createSession(initial);
+						return;
+					} catch (CameraAccessException e) {
+						Logger.e(TAG, "Can not configure session", e);
+					}
+				}
+
+				emit(EVENT_ERROR, SESSION_CONFIGURATION_ERROR, "Session configuration error");
+				failDeferredShots();
+				resolveConfigureCallbacks(SESSION_CONFIGURATION_ERROR, "Session configuration error");
+				if(initial) failOpen(SESSION_CONFIGURATION_ERROR, "Session configuration error");
 				close();
 			}
 
 			@Override
 			public void onClosed (CameraCaptureSession _session){
-				Log.e("TEMP", "DEBUG CameraCaptureSession.StateCallback onClosed");
+				emit(EVENT_SESSION_CLOSED, null, null);
 				if(_session == session) session = null;
+
+				for(ImageReader reader : readers){
+					// the output left by a reconfiguration in progress may still be restored
+					if(!pictureReaders.containsValue(reader) && reader != rollbackReader) reader.close();
+				}
+			}
+		}, handler);
+	}
+
+	private void failDeferredShots(){
+		configuring = false;
+		reconfigurePending = false;
+
+		PendingShot shot;
+		while((shot = deferredShots.poll()) != null){
+			shot.callback.onError(SESSION_CONFIGURATION_ERROR, "Session configuration error");
+		}
+	}
+
+	private void processDeferredShots(){
+		PendingShot shot;
+		while(!configuring && precaptureShot == null && (shot = deferredShots.peek()) != null){
+			if(session == null){
+				deferredShots.poll();
+				shot.callback.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+				continue;
 			}
-		}, null);
+
+			if(shot.snapshot){
+				deferredShots.poll();
+				captureSnapshot(shot.callback);
+				continue;
+			}
+
+			// switching to an output which is not in the session reconfigures it, the shot waits for that
+			if(shot.size != null){
+				Size pictureSize = getPictureSize(shot.size);
+				if(pictureSize == null){
+					deferredShots.poll();
+					shot.callback.onError(UNSUPPORTED_SIZE_ERROR, "Unsupported picture size");
+					continue;
+				}
+				setPicture(pictureSize);
+			}
+			if(configuring) return;
+
+			deferredShots.poll();
+			capture(shot.callback);
+		}
 	}
 
 	public void startPreview() throws CameraAccessException{
@@ -351,6 +1073,115 @@ public class Camera2 {
 		preview.addStateCallback(startPreviewCallback);
 	}
 
+	public float getMinZoom(){
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R){
+			Range<Float> range = characteristics.get(CameraCharacteristics.CONTROL_ZOOM_RATIO_RANGE);
+			if(range != null) return range.getLower();
+		}
+		return 1;
+	}
+
+	public float getMaxZoom(){
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R){
+			Range<Float> range = characteristics.get(CameraCharacteristics.CONTROL_ZOOM_RATIO_RANGE);
+			if(range != null) return range.getUpper();
+		}
+		Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+		return maxZoom != null ? maxZoom : 1;
+	}
+
+	public boolean hasFlash(){
+		Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+		return available != null && available;
+	}
+
+	public float getZoom(){
+		return zoom;
+	}
+
+	public boolean getTorch(){
+		return torch;
+	}
+
+	public String getFlashMode(){
+		return flashMode;
+	}
+
+	public void setZoom(float zoom){
+		this.zoom = Math.max(getMinZoom(), Math.min(getMaxZoom(), zoom));
+		controlsChanged.set(true);
+	}
+
+	public void setTorch(boolean torch){
+		this.torch = torch;
+		controlsChanged.set(true);
+	}
+
+	public void setFlashMode(@NonNull String flashMode){
+		switch(flashMode){
+			case FLASH_MODE_ON:
+			case FLASH_MODE_AUTO:
+				this.flashMode = flashMode;
+				break;
+			default:
+				this.flashMode = FLASH_MODE_OFF;
+				break;
+		}
+		controlsChanged.set(true);
+	}
+
+	private void updatePreviewRequest(){
+		if(session == null || previewRequestBuilder == null) return;
+
+		try {
+			applyControls(previewRequestBuilder);
+			session.setRepeatingRequest(previewRequestBuilder.build(), previewCaptureCallback, handler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Logger.e(TAG, "Can not update preview", e);
+		}
+	}
+
+	/**
+	 * Copies zoom, torch and flash state into a request. Used for both the repeating preview
+	 * request and still captures, so the picture matches what the preview shows.
+	 */
+	private void applyControls(@NonNull CaptureRequest.Builder builder){
+		float zoom = this.zoom;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R){
+			builder.set(CaptureRequest.CONTROL_ZOOM_RATIO, zoom);
+		} else {
+			Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+			if(activeArray != null){
+				int width = Math.round(activeArray.width() / zoom);
+				int height = Math.round(activeArray.height() / zoom);
+				int left = (activeArray.width() - width) / 2;
+				int top = (activeArray.height() - height) / 2;
+				builder.set(CaptureRequest.SCALER_CROP_REGION, new Rect(left, top, left + width, top + height));
+			}
+		}
+
+		if(!hasFlash()) return;
+
+		if(torch){
+			builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+			builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
+			return;
+		}
+
+		switch(flashMode){
+			case FLASH_MODE_ON:
+				builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
+				break;
+			case FLASH_MODE_AUTO:
+				builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+				break;
+			default:
+				builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+				break;
+		}
+		builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+	}
+
 	public <T> Size[] getSupportedSizes(T format, int orientation) throws CameraAccessException {
 		StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
@@ -381,8 +1212,118 @@ public class Camera2 {
 	}
 
 	public void takePicture(ShootCallback shootCallback) {
+		takePicture(null, shootCallback);
+	}
+
+	/**
+	 * @param pictureSize Still output to use, switched to with setPicture. The switch persists,
+	 *                    later shots without a size use it too. null keeps the active one.
+	 */
+	public void takePicture(Size pictureSize, ShootCallback shootCallback) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				deferredShots.add(new PendingShot(pictureSize, shootCallback, false));
+				processDeferredShots();
+			}
+		});
+	}
+
+	/**
+	 * Grabs the next frame the repeating preview request streams into the snapshot output, no
+	 * capture request is queued behind the pipeline. The image passed to the callback is YUV_420_888.
+	 * If the session can not stream the snapshot output it is dropped and EVENT_ERROR reports
+	 * SNAPSHOT_DISABLED_ERROR, later snapshots fail with that code.
+	 */
+	public void takeSnapshot(ShootCallback shootCallback) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				deferredShots.add(new PendingShot(null, shootCallback, true));
+				processDeferredShots();
+			}
+		});
+	}
+
+	private void captureSnapshot(ShootCallback shootCallback) {
+		if(snapshotReader == null){
+			shootCallback.onError(SNAPSHOT_DISABLED_ERROR, "Snapshots are not enabled");
+			return;
+		}
+		if(previewRequestBuilder == null){
+			shootCallback.onError(CAMERA_CLOSED_ERROR, "Preview is not running");
+			return;
+		}
+
+		// the snapshot output is on the repeating request, the next frame it delivers goes to this callback
+		snapshotQueue.add(shootCallback);
+	}
+
+	private void capture(ShootCallback shootCallback) {
+		if(needsPrecapture()){
+			startPrecapture(shootCallback);
+		} else {
+			captureStill(shootCallback);
+		}
+	}
+
+	private boolean needsPrecapture(){
+		return hasFlash() && !torch && !FLASH_MODE_OFF.equals(flashMode) && previewRequestBuilder != null;
+	}
+
+	/**
+	 * Triggers the AE precapture sequence so the flash metering runs before the still capture.
+	 * The still is taken once the preview results have entered PRECAPTURE or FLASH_REQUIRED and
+	 * then left PRECAPTURE, or after PRECAPTURE_TIMEOUT_MS if AE never gets there.
+	 */
+	private void startPrecapture(ShootCallback shootCallback) {
+		try{
+			applyControls(previewRequestBuilder);
+			previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+			CaptureRequest triggerRequest = previewRequestBuilder.build();
+			previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+
+			precaptureShot = shootCallback;
+			precaptureTriggered = false;
+			precaptureMetering = false;
+			session.capture(triggerRequest, new CameraCaptureSession.CaptureCallback() {
+				@Override
+				public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+					// preview results from here on are metered with the trigger
+					if(precaptureShot == shootCallback) precaptureTriggered = true;
+				}
+
+				@Override
+				public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+					if(precaptureShot == shootCallback) finishPrecapture();
+				}
+			}, handler);
+			handler.postDelayed(precaptureTimeout, PRECAPTURE_TIMEOUT_MS);
+		} catch(CameraAccessException | IllegalStateException e){
+			precaptureShot = null;
+			shootCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
+		}
+	}
+
+	private void finishPrecapture(){
+		handler.removeCallbacks(precaptureTimeout);
+		ShootCallback shootCallback = precaptureShot;
+		precaptureShot = null;
+		precaptureTriggered = false;
+		precaptureMetering = false;
+		if(shootCallback == null) return;
+
 		if(session == null){
-			shootCallback.onError("TODO", "TODO");
+			shootCallback.onError(CAMERA_CLOSED_ERROR, "Camera is closed");
+		} else {
+			captureStill(shootCallback);
+		}
+		processDeferredShots();
+	}
+
+	private void captureStill(ShootCallback shootCallback) {
+		if(imageReader == null){
+			shootCallback.onError(UNSUPPORTED_SIZE_ERROR, "No picture size is set");
 			return;
 		}
 
@@ -390,17 +1331,47 @@ public class Camera2 {
 			CaptureRequest.Builder singleRequest =
 				session.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
 			singleRequest.addTarget(imageReader.getSurface());
+			applyControls(singleRequest);
+			if(analysisReader != null){
+				singleRequest.addTarget(analysisReader.getSurface());
+			}
 
+			// queued before the capture, the picture can be available before onCaptureCompleted
+			shootQueue.add(shootCallback);
+			Surface pictureSurface = imageReader.getSurface();
 			session.capture(singleRequest.build(), new CameraCaptureSession.CaptureCallback() {
-				public void onCaptureFailed (CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
-					shootCallback.onError("TODO", "TODO");
+				private long timestamp;
+
+				@Override
+				public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+					this.timestamp = timestamp;
 				}
 
-				public void onCaptureCompleted (CameraCaptureSession session, CaptureRequest request, TotalCaptureResult totalResult){
-					shootQueue.add(shootCallback);
+				@Override
+				public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+					if(analysisReader != null && target == analysisReader.getSurface()){
+						onAnalysisLost(timestamp);
+						return;
+					}
+					if(target != pictureSurface || !shootQueue.remove(shootCallback)) return;
+
+					pendingMetrics.remove(timestamp);
+					emit(EVENT_CAPTURE_FAILED, CAPTURE_FAILED_ERROR, "Picture buffer lost");
+					shootCallback.onError(CAPTURE_FAILED_ERROR, "Picture buffer lost");
+				}
+
+				public void onCaptureFailed (CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+					if(!shootQueue.remove(shootCallback)) return;
+
+					String message = failure.getReason() == CaptureFailure.REASON_FLUSHED
+						? "Capture was flushed"
+						: "Capture failed";
+					emit(EVENT_CAPTURE_FAILED, CAPTURE_FAILED_ERROR, message);
+					shootCallback.onError(CAPTURE_FAILED_ERROR, message);
 				}
-			}, null);
-		} catch(CameraAccessException e){
+			}, handler);
+		} catch(CameraAccessException | IllegalStateException e){
+			shootQueue.remove(shootCallback);
 			shootCallback.onError(CAMERA_ACCESS_ERROR, e.getMessage());
 		}
 	}
@@ -0,0 +1,121 @@
+package ru.pronetcom.camerapreview2;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+/**
+ * Streams camera events to a single kept alive JS callback.
+ * Lifecycle events always go through. Repeated error and captureFailed events of the same code
+ * are sent at most once per MIN_INTERVAL_MS, the last one held back is sent when the interval
+ * ends and carries how many were dropped.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class CameraEventChannel implements Camera2.EventListener {
+	private static final String TAG = "CameraEventChannel";
+	public static final long MIN_INTERVAL_MS = 250;
+
+	private final class Throttle implements Runnable {
+		long lastTime;
+		int dropped;
+		JSONObject held;
+
+		@Override
+		public void run() {
+			synchronized(CameraEventChannel.this){
+				if(held == null) return;
+				send(held, this);
+			}
+		}
+	}
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private CallbackContext callbackContext = null;
+	private final HashMap<String, Throttle> throttles = new HashMap<>();
+
+	public synchronized void setCallbackContext(CallbackContext callbackContext){
+		if(this.callbackContext != null){
+			PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+			result.setKeepCallback(false);
+			this.callbackContext.sendPluginResult(result);
+		}
+		this.callbackContext = callbackContext;
+		for(Throttle throttle : throttles.values()) handler.removeCallbacks(throttle);
+		throttles.clear();
+	}
+
+	private static boolean throttled(@NonNull String type){
+		return Camera2.EVENT_ERROR.equals(type) || Camera2.EVENT_CAPTURE_FAILED.equals(type);
+	}
+
+	@Override
+	public synchronized void onEvent(@NonNull String type, String code, String message){
+		if(Logger.DEBUG) Logger.d(TAG, type + " " + code + " " + message);
+		if(callbackContext == null) return;
+
+		JSONObject event = new JSONObject();
+		try {
+			event.put("type", type);
+			if(code != null) event.put("code", code);
+			if(message != null) event.put("message", message);
+			event.put("timestamp", System.currentTimeMillis());
+		} catch (JSONException e) {
+			Logger.e(TAG, "Can not serialize event", e);
+			return;
+		}
+
+		if(!throttled(type)){
+			send(event, null);
+			return;
+		}
+
+		String key = type + ":" + code;
+		Throttle throttle = throttles.get(key);
+		if(throttle == null){
+			throttle = new Throttle();
+			throttles.put(key, throttle);
+		} else {
+			long wait = throttle.lastTime + MIN_INTERVAL_MS - SystemClock.elapsedRealtime();
+			if(wait > 0){
+				if(throttle.held != null) throttle.dropped++;
+				else handler.postDelayed(throttle, wait);
+				throttle.held = event;
+				return;
+			}
+		}
+
+		send(event, throttle);
+	}
+
+	private void send(@NonNull JSONObject event, Throttle throttle){
+		if(callbackContext == null) return;
+
+		try {
+			if(throttle != null && throttle.dropped > 0) event.put("dropped", throttle.dropped);
+		} catch (JSONException e) {
+			Logger.e(TAG, "Can not serialize event", e);
+		}
+
+		PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+		result.setKeepCallback(true);
+		callbackContext.sendPluginResult(result);
+
+		if(throttle != null){
+			throttle.lastTime = SystemClock.elapsedRealtime();
+			throttle.dropped = 0;
+			throttle.held = null;
+		}
+	}
+}
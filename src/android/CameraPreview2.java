@@ -13,6 +13,7 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.Size;
@@ -43,7 +44,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import ru.pronetcom.easymerch2.R;
@@ -51,6 +52,9 @@ import ru.pronetcom.easymerch2.R;
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class CameraPreview2 extends CordovaPlugin {
 	public static final String TAG = "CameraPreview2";
+	public static final String QUALITY_REJECTED_ERROR = "QUALITY_REJECTED_ERROR";
+	public static final String FILE_ERROR = "FILE_ERROR";
+	public static final String INVALID_OPTIONS_ERROR = "INVALID_OPTIONS_ERROR";
 
 	private CameraManager cameraManager;
 
@@ -61,8 +65,13 @@ public class CameraPreview2 extends CordovaPlugin {
 		public int previewY;
 		public int pictureWidth;
 		public int pictureHeight;
+		public ArrayList<Size> pictureSizes = new ArrayList<>();
 		public int lensFacing;
 		public int orientation;
+		public boolean qualityAnalysis;
+		public boolean textureView;
+		public boolean snapshot;
+		public boolean previewFit;
 
 		private final DisplayMetrics metrics;
 
@@ -86,8 +95,17 @@ public class CameraPreview2 extends CordovaPlugin {
 			if(previewHeight == 0) previewHeight = FrameLayout.LayoutParams.MATCH_PARENT;
 			if(previewWidth == 0) previewWidth = FrameLayout.LayoutParams.MATCH_PARENT;
 
-			pictureWidth = applyDimension(options.optInt("pictureWidth"));
-			pictureHeight = applyDimension(options.optInt("pictureHeight"));
+			// picture sizes come from getSupportedSizes, they are in pixels
+			pictureWidth = options.optInt("pictureWidth");
+			pictureHeight = options.optInt("pictureHeight");
+
+			JSONArray jsonPictureSizes = options.optJSONArray("pictureSizes");
+			if(jsonPictureSizes != null){
+				for(int i = 0; i < jsonPictureSizes.length(); i++){
+					JSONObject jsonSize = jsonPictureSizes.getJSONObject(i);
+					pictureSizes.add(new Size(jsonSize.getInt("width"), jsonSize.getInt("height")));
+				}
+			}
 			
 			switch(options.optString("camera")){
 				default:
@@ -108,11 +126,81 @@ public class CameraPreview2 extends CordovaPlugin {
 					orientation = 90;
 					break;
 			}
+
+			qualityAnalysis = options.optBoolean("qualityAnalysis");
+			textureView = "texture".equals(options.optString("previewType"));
+			previewFit = "fit".equals(options.optString("previewScale"));
+			snapshot = options.optBoolean("snapshot");
+		}
+	}
+
+	public static class PictureOptions{
+		public int maxWidth;
+		public int maxHeight;
+		public int quality;
+		public boolean keepOriginal;
+		// called without options, resolve with the bare path as before the result object existed
+		public boolean legacyResult;
+		public Size pictureSize;
+		public double minSharpness;
+		public double minLuma;
+		public double maxLuma;
+		public double maxClipped;
+		public boolean qualityGate;
+
+		PictureOptions(JSONObject options){
+			legacyResult = options == null;
+			if(options == null) options = new JSONObject();
+
+			// sizes of the written file are in pixels, not dp, and in display orientation like getSupportedSizes
+			maxWidth = Integer.MAX_VALUE;
+			maxHeight = Integer.MAX_VALUE;
+
+			int maxEdge = options.optInt("maxEdge");
+			if(maxEdge > 0){
+				maxWidth = maxEdge;
+				maxHeight = maxEdge;
+			}
+
+			JSONObject targetSize = options.optJSONObject("targetSize");
+			if(targetSize != null){
+				if(targetSize.optInt("width") > 0) maxWidth = Math.min(maxWidth, targetSize.optInt("width"));
+				if(targetSize.optInt("height") > 0) maxHeight = Math.min(maxHeight, targetSize.optInt("height"));
+			}
+
+			quality = Math.max(1, Math.min(100, options.optInt("quality", 90)));
+			keepOriginal = options.optBoolean("keepOriginal");
+
+			if(options.optInt("pictureWidth") > 0 && options.optInt("pictureHeight") > 0){
+				pictureSize = new Size(options.optInt("pictureWidth"), options.optInt("pictureHeight"));
+			}
+
+			JSONObject qualityGate = options.optJSONObject("qualityGate");
+			this.qualityGate = qualityGate != null;
+			if(qualityGate == null) qualityGate = new JSONObject();
+			minSharpness = qualityGate.optDouble("minSharpness", 0);
+			minLuma = qualityGate.optDouble("minLuma", 0);
+			maxLuma = qualityGate.optDouble("maxLuma", 255);
+			maxClipped = qualityGate.optDouble("maxClipped", 1);
+		}
+
+		String checkQuality(QualityMetrics quality){
+			if(quality.sharpness < minSharpness) return "Picture is blurry";
+			if(quality.luma < minLuma) return "Picture is too dark";
+			if(quality.luma > maxLuma) return "Picture is too bright";
+			if(quality.clipped > maxClipped) return "Picture has too many clipped pixels";
+			return null;
+		}
+
+		boolean needScale(){
+			return maxWidth != Integer.MAX_VALUE || maxHeight != Integer.MAX_VALUE;
 		}
 	}
 
 	private FrameLayout cameraLayout;
 	private Camera2 mCamera2 = null;
+	private Camera2.Preview mPreview = null;
+	private final CameraEventChannel eventChannel = new CameraEventChannel();
 
 	private final HashMap<Integer, String> cameraTypesMap = new HashMap<>();
 
@@ -127,7 +215,7 @@ public class CameraPreview2 extends CordovaPlugin {
 
 		String[] cameraIds = cameraManager.getCameraIdList();
 
-		Log.e(TAG, String.format("CAMERAS COUNT = %s", cameraIds.length));
+		if(Logger.DEBUG) Logger.d(TAG, String.format("CAMERAS COUNT = %s", cameraIds.length));
 
 		for (String id : cameraIds) {
 			CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
@@ -157,21 +245,49 @@ public class CameraPreview2 extends CordovaPlugin {
 					public void run() {
 						try {
 							startCamera(callbackContext, options);
-						} catch (CameraAccessException | JSONException e) {
-							callbackContext.error(e.getMessage());
-							e.printStackTrace();
+						} catch (CameraAccessException e) {
+							Logger.e(TAG, "Can not start camera", e);
+							error(callbackContext, Camera2.CAMERA_ACCESS_ERROR, e.getMessage());
+						} catch (JSONException e) {
+							Logger.e(TAG, "Can not start camera", e);
+							error(callbackContext, INVALID_OPTIONS_ERROR, e.getMessage());
 						}
 					}
 				});
 				return true;
 			}
-			case "takePicture": takePicture(callbackContext); return true;
+			case "takePicture": takePicture(callbackContext, new PictureOptions(args.optJSONObject(0))); return true;
+			case "takeSnapshot": takeSnapshot(callbackContext, new PictureOptions(args.optJSONObject(0))); return true;
 			case "close": close(callbackContext); return true;
+			case "setEventCallback": eventChannel.setCallbackContext(callbackContext); return true;
+			case "setPreviewControls": setPreviewControls(callbackContext, args.optJSONObject(0)); return true;
+			case "getPreviewControls": getPreviewControls(callbackContext); return true;
+			case "setPictureSize": {
+				JSONObject size = args.getJSONObject(0);
+				Size pictureSize = new Size(size.getInt("width"), size.getInt("height"));
+				cordova.getActivity().runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						setPictureSize(callbackContext, pictureSize);
+					}
+				});
+				return true;
+			}
+			case "setPreviewBounds": {
+				JSONObject bounds = args.optJSONObject(0);
+				cordova.getActivity().runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						setPreviewBounds(callbackContext, bounds);
+					}
+				});
+				return true;
+			}
 			case "getSupportedSizes":
 				try {
 					getSupportedSizes(callbackContext, args.getJSONObject(0));
 				} catch (JSONException e){
-					e.printStackTrace();
+					Logger.e(TAG, "Can not get supported sizes", e);
 					throw e;
 				}
 				return true;
@@ -195,10 +311,10 @@ public class CameraPreview2 extends CordovaPlugin {
 
 			callbackContext.success(jsonSizes);
 		} catch (CameraAccessException e) {
-			callbackContext.error(e.getMessage());
-			e.printStackTrace();
+			Logger.e(TAG, "Can not get supported sizes", e);
+			error(callbackContext, Camera2.CAMERA_ACCESS_ERROR, e.getMessage());
 		} catch(JSONException e) {
-			e.printStackTrace();
+			Logger.e(TAG, "Can not get supported sizes", e);
 			throw e;
 		}
 	}
@@ -222,60 +338,264 @@ public class CameraPreview2 extends CordovaPlugin {
 
 		cameraLayout = initLayout(options.previewX, options.previewY);
 		SurfaceView surfaceView = (SurfaceView) cameraLayout.findViewById(R.id.camera2_surface);
-
-		Camera2.Preview preview = new SurfaceViewPreview(surfaceView, new Size(options.previewWidth, options.previewHeight));
+		Size previewSize = new Size(options.previewWidth, options.previewHeight);
+
+		Camera2.Preview preview;
+		if(options.textureView){
+			cameraLayout.removeView(surfaceView);
+			TextureView textureView = new TextureView(cordova.getContext());
+			preview = new TextureViewPreview(textureView, previewSize, options.previewFit);
+			cameraLayout.addView(textureView);
+		} else {
+			preview = new SurfaceViewPreview(surfaceView, previewSize);
+		}
+		mPreview = preview;
 		mCamera2 = new Camera2(cameraId, cordova.getContext());
 		mCamera2.setPreview(preview);
-		mCamera2.setPicture(new Size(options.pictureWidth, options.pictureHeight));
+		mCamera2.setPictureSizes(options.pictureSizes);
+		if(options.pictureWidth > 0 || options.pictureHeight > 0){
+			Size pictureSize = new Size(options.pictureWidth, options.pictureHeight);
+			if(mCamera2.getPictureSize(pictureSize) == null){
+				clear();
+				error(callbackContext, Camera2.UNSUPPORTED_SIZE_ERROR, "Unsupported picture size");
+				return;
+			}
+			mCamera2.setPicture(pictureSize);
+		}
+		mCamera2.setQualityAnalysis(options.qualityAnalysis);
+		mCamera2.setSnapshot(options.snapshot);
+		mCamera2.setEventListener(eventChannel);
+		Camera2 camera2 = mCamera2;
 		mCamera2.open(new Camera2.StateCallback(){
 			@Override
 			public void onError(String code, String message){
-				Log.e(TAG, "DEBUG Camera2.StateCallback onError");
-				callbackContext.error(message);
+				error(callbackContext, code, message);
 			}
 
 			@Override
 			public void onOpen() throws CameraAccessException{
-				Log.e(TAG, "DEBUG Camera2.StateCallback onOpen");
-				mCamera2.startPreview();
+				camera2.startPreview();
 				callbackContext.success();
 			}
 
 			@Override
 			public void onClose() {
-				Log.e(TAG, "DEBUG Camera2.StateCallback onClose");
-				// clear();
+				cordova.getActivity().runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						// a new camera may have been started meanwhile
+						if(mCamera2 == camera2) clear();
+					}
+				});
 			}
 		});
 	}
 
-	public void takePicture(CallbackContext callbackContext) {
+	public void takePicture(CallbackContext callbackContext, PictureOptions options) {
 		if(mCamera2 == null){
-			callbackContext.error("Camera is closed");
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
 			return;
 		}
 
-		mCamera2.takePicture(new Camera2.ShootCallback() {
+		mCamera2.takePicture(options.pictureSize, shootCallback(callbackContext, options, mCamera2.rotated(), false));
+	}
+
+	public void takeSnapshot(CallbackContext callbackContext, PictureOptions options) {
+		if(mCamera2 == null){
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
+			return;
+		}
+
+		mCamera2.takeSnapshot(shootCallback(callbackContext, options, mCamera2.rotated(), true));
+	}
+
+	/**
+	 * Saves what a picture or snapshot capture delivers. The latency is measured from here,
+	 * capture until the image is available and total until the file is written.
+	 *
+	 * @param rotated The image is in sensor orientation which is turned against the display.
+	 * @param snapshot The image is a YUV_420_888 preview frame instead of a JPEG.
+	 */
+	private Camera2.ShootCallback shootCallback(CallbackContext callbackContext, PictureOptions options, boolean rotated, boolean snapshot){
+		long startTime = SystemClock.elapsedRealtime();
+		Camera2 camera2 = mCamera2;
+
+		return new Camera2.ShootCallback() {
 			@Override
 			public void onError(String code, String message){
-				callbackContext.error(message);
+				error(callbackContext, code, message);
 			}
 
 			@Override
-			public void onShoot(Image image){
-				try {
-					File file = saveImage(image);
-					callbackContext.success(file.getPath());
-				} catch (IOException e) {
-					callbackContext.error("Can not create file");
+			public void onShoot(Image image, QualityMetrics quality){
+				long captureLatency = SystemClock.elapsedRealtime() - startTime;
+
+				if(quality == null && options.qualityGate){
+					// a gate without scores would let the shots it should reject through
+					if(camera2.hasQualityAnalysis()){
+						error(callbackContext, QUALITY_REJECTED_ERROR, "Picture has no quality scores");
+					} else {
+						error(callbackContext, Camera2.QUALITY_ANALYSIS_DISABLED_ERROR, "Quality analysis is disabled, start the camera with qualityAnalysis");
+					}
+					return;
+				}
+
+				if(quality != null){
+					String rejectMessage = options.checkQuality(quality);
+					if(rejectMessage != null){
+						try {
+							error(callbackContext, QUALITY_REJECTED_ERROR, rejectMessage, quality.toJSON());
+						} catch (JSONException e) {
+							error(callbackContext, QUALITY_REJECTED_ERROR, rejectMessage);
+						}
+						return;
+					}
 				}
+
+				// the image goes back to the reader as soon as we return, so only copy it here
+				YuvFrame frame = snapshot ? new YuvFrame(image) : null;
+				byte[] picture = snapshot ? null : readImage(image);
+				cordova.getThreadPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							byte[] jpeg = snapshot ? frame.toJpeg(options.quality) : picture;
+							JSONObject result = savePicture(jpeg, options, rotated);
+							if(options.legacyResult){
+								callbackContext.success(result.getString("path"));
+								return;
+							}
+							if(quality != null) result.put("quality", quality.toJSON());
+
+							JSONObject latency = new JSONObject();
+							latency.put("capture", captureLatency);
+							latency.put("total", SystemClock.elapsedRealtime() - startTime);
+							result.put("latency", latency);
+
+							callbackContext.success(result);
+						} catch (IOException | JSONException e) {
+							Logger.e(TAG, "Can not save picture", e);
+							error(callbackContext, FILE_ERROR, "Can not create file");
+						}
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Switches the still output of a running camera without reopening it. Resolves once the
+	 * session runs with the new output, a failed switch leaves the previous one active.
+	 */
+	public void setPictureSize(CallbackContext callbackContext, Size size){
+		if(mCamera2 == null){
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
+			return;
+		}
+
+		mCamera2.setPicture(size, new Camera2.ConfigureCallback() {
+			@Override
+			public void onError(String code, String message){
+				error(callbackContext, code, message);
+			}
+
+			@Override
+			public void onConfigured(){
+				callbackContext.success();
 			}
 		});
 	}
 
+	/**
+	 * Moves and resizes the preview. The camera stream is not touched, with the TextureView preview
+	 * it keeps running uninterrupted.
+	 */
+	public void setPreviewBounds(CallbackContext callbackContext, JSONObject bounds){
+		if(mCamera2 == null || cameraLayout == null){
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
+			return;
+		}
+
+		try {
+			CameraOptions options = new CameraOptions(bounds, cordova.getContext());
+			cameraLayout.setX(options.previewX);
+			cameraLayout.setY(options.previewY);
+			mPreview.setSize(new Size(options.previewWidth, options.previewHeight));
+			callbackContext.success();
+		} catch (JSONException e) {
+			error(callbackContext, INVALID_OPTIONS_ERROR, e.getMessage());
+		}
+	}
+
+	public void setPreviewControls(CallbackContext callbackContext, JSONObject options) throws JSONException{
+		if(mCamera2 == null){
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
+			return;
+		}
+		if(options == null) options = new JSONObject();
+
+		// all values are read before any is applied, so a wrongly typed one changes nothing
+		Double zoom;
+		Boolean torch;
+		String flash;
+		try {
+			zoom = options.has("zoom") ? options.getDouble("zoom") : null;
+			torch = options.has("torch") ? options.getBoolean("torch") : null;
+			flash = options.has("flash") ? options.getString("flash") : null;
+		} catch (JSONException e) {
+			error(callbackContext, INVALID_OPTIONS_ERROR, e.getMessage());
+			return;
+		}
+
+		// only stores the values, the repeating request picks the latest ones up on the next frame
+		if(zoom != null) mCamera2.setZoom(zoom.floatValue());
+		if(torch != null) mCamera2.setTorch(torch);
+		if(flash != null) mCamera2.setFlashMode(flash);
+
+		getPreviewControls(callbackContext);
+	}
+
+	public void getPreviewControls(CallbackContext callbackContext) throws JSONException{
+		if(mCamera2 == null){
+			error(callbackContext, Camera2.CAMERA_CLOSED_ERROR, "Camera is closed");
+			return;
+		}
+
+		JSONObject controls = new JSONObject();
+		controls.put("zoom", mCamera2.getZoom());
+		controls.put("minZoom", mCamera2.getMinZoom());
+		controls.put("maxZoom", mCamera2.getMaxZoom());
+		controls.put("torch", mCamera2.getTorch());
+		controls.put("flash", mCamera2.getFlashMode());
+		controls.put("hasFlash", mCamera2.hasFlash());
+
+		callbackContext.success(controls);
+	}
+
 	public void close(CallbackContext callbackContext){
-		if(mCamera2 != null) mCamera2.close();
-		callbackContext.success();
+		cordova.getActivity().runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if(mCamera2 != null) mCamera2.close();
+				callbackContext.success();
+			}
+		});
+	}
+
+	private static void error(CallbackContext callbackContext, String code, String message){
+		error(callbackContext, code, message, null);
+	}
+
+	private static void error(CallbackContext callbackContext, String code, String message, JSONObject quality){
+		try {
+			JSONObject error = new JSONObject();
+			error.put("code", code);
+			error.put("message", message);
+			if(quality != null) error.put("quality", quality);
+			callbackContext.error(error);
+		} catch (JSONException e) {
+			callbackContext.error(message);
+		}
 	}
 
 	private void clear(){
@@ -284,20 +604,46 @@ public class CameraPreview2 extends CordovaPlugin {
 		}
 		cameraLayout = null;
 		mCamera2 = null;
+		mPreview = null;
 	}
 
-	private File saveImage(Image image) throws IOException{
-		File tempFile = File.createTempFile("camera2", ".jpeg");
-		FileOutputStream out = new FileOutputStream(tempFile);
-		FileChannel channel = out.getChannel();
+	private byte[] readImage(Image image){
+		ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+
+		return bytes;
+	}
 
-		Image.Plane[] planes = image.getPlanes();
-		for(Image.Plane plane : planes){
-			ByteBuffer buffer = plane.getBuffer();
-			channel.write(buffer);
+	/**
+	 * @param rotated The picture is in sensor orientation turned against the display, the box
+	 *                given in display orientation is turned to match it.
+	 */
+	private JSONObject savePicture(byte[] jpeg, PictureOptions options, boolean rotated) throws IOException, JSONException{
+		JSONObject result = new JSONObject();
+		File file = File.createTempFile("camera2", ".jpeg");
+		Size size;
+
+		if(options.needScale()){
+			JpegDownscaler downscaler = rotated
+				? new JpegDownscaler(options.maxHeight, options.maxWidth, options.quality)
+				: new JpegDownscaler(options.maxWidth, options.maxHeight, options.quality);
+			size = downscaler.write(jpeg, file);
+
+			if(options.keepOriginal){
+				File originalFile = File.createTempFile("camera2", ".jpeg");
+				JpegDownscaler.writeBytes(jpeg, originalFile);
+				result.put("originalPath", originalFile.getPath());
+			}
+		} else {
+			JpegDownscaler.writeBytes(jpeg, file);
+			size = JpegDownscaler.decodeSize(jpeg);
 		}
-		out.close();
 
-		return tempFile;
+		result.put("path", file.getPath());
+		result.put("width", size.getWidth());
+		result.put("height", size.getHeight());
+
+		return result;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package ru.pronetcom.camerapreview2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.exifinterface.media.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Shrinks an encoded JPEG to fit into a bounding box without ever decoding it at full size:
+ * the bitmap is decoded with the largest power of two inSampleSize that still covers the
+ * target, then scaled to the exact size and encoded straight into the destination file.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class JpegDownscaler {
+	private static final String[] EXIF_TAGS = {
+		ExifInterface.TAG_ORIENTATION,
+		ExifInterface.TAG_DATETIME,
+		ExifInterface.TAG_DATETIME_ORIGINAL,
+		ExifInterface.TAG_DATETIME_DIGITIZED,
+		ExifInterface.TAG_SUBSEC_TIME,
+		ExifInterface.TAG_SUBSEC_TIME_ORIGINAL,
+		ExifInterface.TAG_SUBSEC_TIME_DIGITIZED,
+		ExifInterface.TAG_MAKE,
+		ExifInterface.TAG_MODEL,
+		ExifInterface.TAG_SOFTWARE,
+		ExifInterface.TAG_EXPOSURE_TIME,
+		ExifInterface.TAG_F_NUMBER,
+		ExifInterface.TAG_ISO_SPEED_RATINGS,
+		ExifInterface.TAG_APERTURE_VALUE,
+		ExifInterface.TAG_SHUTTER_SPEED_VALUE,
+		ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+		ExifInterface.TAG_FOCAL_LENGTH,
+		ExifInterface.TAG_FOCAL_LENGTH_IN_35MM_FILM,
+		ExifInterface.TAG_FLASH,
+		ExifInterface.TAG_WHITE_BALANCE,
+		ExifInterface.TAG_METERING_MODE,
+		ExifInterface.TAG_GPS_LATITUDE,
+		ExifInterface.TAG_GPS_LATITUDE_REF,
+		ExifInterface.TAG_GPS_LONGITUDE,
+		ExifInterface.TAG_GPS_LONGITUDE_REF,
+		ExifInterface.TAG_GPS_ALTITUDE,
+		ExifInterface.TAG_GPS_ALTITUDE_REF,
+		ExifInterface.TAG_GPS_TIMESTAMP,
+		ExifInterface.TAG_GPS_DATESTAMP,
+		ExifInterface.TAG_GPS_PROCESSING_METHOD,
+	};
+
+	private final int maxWidth;
+	private final int maxHeight;
+	private final int quality;
+
+	public JpegDownscaler(int maxWidth, int maxHeight, int quality){
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.quality = quality;
+	}
+
+	public static Size decodeSize(@NonNull byte[] jpeg){
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+
+		return new Size(bounds.outWidth, bounds.outHeight);
+	}
+
+	public Size getTargetSize(@NonNull Size size){
+		double scale = Math.min((double)maxWidth / size.getWidth(), (double)maxHeight / size.getHeight());
+		if(scale >= 1) return size;
+
+		return new Size(
+			Math.max(1, (int)Math.round(size.getWidth() * scale)),
+			Math.max(1, (int)Math.round(size.getHeight() * scale))
+		);
+	}
+
+	/**
+	 * Writes the picture into file, downscaled if it does not fit. EXIF of the source is kept.
+	 *
+	 * @return Size of the written picture.
+	 */
+	public Size write(@NonNull byte[] jpeg, @NonNull File file) throws IOException{
+		Size size = decodeSize(jpeg);
+		Size targetSize = getTargetSize(size);
+
+		if(targetSize.equals(size)){
+			writeBytes(jpeg, file);
+			return size;
+		}
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 1;
+		while(size.getWidth() / (options.inSampleSize * 2) >= targetSize.getWidth()
+				&& size.getHeight() / (options.inSampleSize * 2) >= targetSize.getHeight()){
+			options.inSampleSize *= 2;
+		}
+
+		Bitmap sampled = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		if(sampled == null) throw new IOException("Can not decode picture");
+
+		Bitmap scaled = sampled;
+		if(sampled.getWidth() != targetSize.getWidth() || sampled.getHeight() != targetSize.getHeight()){
+			scaled = Bitmap.createScaledBitmap(sampled, targetSize.getWidth(), targetSize.getHeight(), true);
+			sampled.recycle();
+		}
+
+		try(FileOutputStream out = new FileOutputStream(file)){
+			if(!scaled.compress(Bitmap.CompressFormat.JPEG, quality, out)){
+				throw new IOException("Can not encode picture");
+			}
+		} finally {
+			scaled.recycle();
+		}
+
+		copyExif(jpeg, file, targetSize);
+
+		return targetSize;
+	}
+
+	public static void writeBytes(@NonNull byte[] jpeg, @NonNull File file) throws IOException{
+		try(FileOutputStream out = new FileOutputStream(file)){
+			out.write(jpeg);
+		}
+	}
+
+	private static void copyExif(@NonNull byte[] jpeg, @NonNull File file, @NonNull Size size) throws IOException{
+		ExifInterface source = new ExifInterface(new ByteArrayInputStream(jpeg));
+		ExifInterface target = new ExifInterface(file.getPath());
+
+		for(String tag : EXIF_TAGS){
+			String value = source.getAttribute(tag);
+			if(value != null) target.setAttribute(tag, value);
+		}
+		target.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(size.getWidth()));
+		target.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(size.getHeight()));
+		target.setAttribute(ExifInterface.TAG_PIXEL_X_DIMENSION, String.valueOf(size.getWidth()));
+		target.setAttribute(ExifInterface.TAG_PIXEL_Y_DIMENSION, String.valueOf(size.getHeight()));
+
+		target.saveAttributes();
+	}
+}
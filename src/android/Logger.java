@@ -0,0 +1,41 @@
+package ru.pronetcom.camerapreview2;
+
+import android.util.Log;
+
+import ru.pronetcom.easymerch2.BuildConfig;
+
+/**
+ * Leveled logging. The app's BuildConfig.DEBUG is a real constant in both build types, so LEVEL
+ * is one too and release builds have the calls below WARN dropped by javac. Arguments are still
+ * built at the call site, guard costly ones with if(Logger.DEBUG), which goes along with the call.
+ */
+public final class Logger {
+	private static final int LEVEL = BuildConfig.DEBUG ? Log.VERBOSE : Log.WARN;
+	public static final boolean DEBUG = LEVEL <= Log.DEBUG;
+
+	private Logger(){}
+
+	public static void v(String tag, String message){
+		if(LEVEL <= Log.VERBOSE) Log.v(tag, message);
+	}
+
+	public static void d(String tag, String message){
+		if(LEVEL <= Log.DEBUG) Log.d(tag, message);
+	}
+
+	public static void i(String tag, String message){
+		if(LEVEL <= Log.INFO) Log.i(tag, message);
+	}
+
+	public static void w(String tag, String message){
+		if(LEVEL <= Log.WARN) Log.w(tag, message);
+	}
+
+	public static void e(String tag, String message){
+		if(LEVEL <= Log.ERROR) Log.e(tag, message);
+	}
+
+	public static void e(String tag, String message, Throwable throwable){
+		if(LEVEL <= Log.ERROR) Log.e(tag, message, throwable);
+	}
+}
@@ -0,0 +1,93 @@
+package ru.pronetcom.camerapreview2;
+
+import android.media.Image;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap picture quality scores computed on a luma grid of at most GRID_EDGE samples per edge.
+ * sharpness - variance of the 4-neighbour Laplacian, luma - mean luma 0..255,
+ * clipped - share of samples that are crushed to black or blown to white.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class QualityMetrics {
+	public static final int GRID_EDGE = 256;
+	private static final int BLACK_LEVEL = 4;
+	private static final int WHITE_LEVEL = 251;
+
+	public final double sharpness;
+	public final double luma;
+	public final double clipped;
+
+	public QualityMetrics(double sharpness, double luma, double clipped){
+		this.sharpness = sharpness;
+		this.luma = luma;
+		this.clipped = clipped;
+	}
+
+	public static QualityMetrics fromImage(@NonNull Image image){
+		Image.Plane plane = image.getPlanes()[0];
+		ByteBuffer buffer = plane.getBuffer();
+		int rowStride = plane.getRowStride();
+		int pixelStride = plane.getPixelStride();
+
+		int step = Math.max(1, (Math.max(image.getWidth(), image.getHeight()) + GRID_EDGE - 1) / GRID_EDGE);
+		int width = image.getWidth() / step;
+		int height = image.getHeight() / step;
+		int[] grid = new int[width * height];
+
+		long sum = 0;
+		int clippedCount = 0;
+		for(int y = 0; y < height; y++){
+			int row = y * step * rowStride;
+			for(int x = 0; x < width; x++){
+				int value = buffer.get(row + x * step * pixelStride) & 0xFF;
+				grid[y * width + x] = value;
+				sum += value;
+				if(value <= BLACK_LEVEL || value >= WHITE_LEVEL) clippedCount++;
+			}
+		}
+
+		double lapSum = 0;
+		double lapSquareSum = 0;
+		int lapCount = 0;
+		for(int y = 1; y < height - 1; y++){
+			for(int x = 1; x < width - 1; x++){
+				int i = y * width + x;
+				int lap = 4 * grid[i] - grid[i - 1] - grid[i + 1] - grid[i - width] - grid[i + width];
+				lapSum += lap;
+				lapSquareSum += (double)lap * lap;
+				lapCount++;
+			}
+		}
+
+		int count = grid.length;
+		double sharpness = 0;
+		if(lapCount > 0){
+			double lapMean = lapSum / lapCount;
+			sharpness = lapSquareSum / lapCount - lapMean * lapMean;
+		}
+
+		return new QualityMetrics(
+			sharpness,
+			count > 0 ? (double)sum / count : 0,
+			count > 0 ? (double)clippedCount / count : 0
+		);
+	}
+
+	public JSONObject toJSON() throws JSONException{
+		JSONObject json = new JSONObject();
+		json.put("sharpness", sharpness);
+		json.put("luma", luma);
+		json.put("clipped", clipped);
+
+		return json;
+	}
+}
@@ -2,7 +2,6 @@ package ru.pronetcom.camerapreview2;
 
 import android.graphics.Rect;
 import android.os.Build;
-import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -14,8 +13,10 @@ import androidx.annotation.RequiresApi;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class SurfaceViewPreview extends Camera2.Preview{
+	private static final String TAG = "SurfaceViewPreview";
+
 	private final SurfaceView surfaceView;
-	private final Size size;
+	private Size size;
 
 	private boolean exists = false;
 	private boolean needChange = false;
@@ -28,7 +29,7 @@ public class SurfaceViewPreview extends Camera2.Preview{
 		surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
 			@Override
 			public void surfaceCreated(@NonNull SurfaceHolder surfaceHolder) {
-				Log.e("TEMP", "DEBUG SurfaceHolder.Callback surfaceCreated");
+				Logger.d(TAG, "SurfaceHolder.Callback surfaceCreated");
 				boolean isReadyStart = isReady();
 				exists = true;
 				if(!isReadyStart && isReady()) stateCallbacks.onSurfaceReady(SurfaceViewPreview.this);
@@ -37,7 +38,7 @@ public class SurfaceViewPreview extends Camera2.Preview{
 
 			@Override
 			public void surfaceChanged(@NonNull SurfaceHolder surfaceHolder, int i, int i1, int i2) {
-				Log.e("TEMP", "DEBUG SurfaceHolder.Callback surfaceChanged");
+				Logger.d(TAG, "SurfaceHolder.Callback surfaceChanged");
 				boolean isReadyStart = isReady();
 				needChange = false;
 				if(!isReadyStart && isReady()) stateCallbacks.onSurfaceReady(SurfaceViewPreview.this);
@@ -45,7 +46,7 @@ public class SurfaceViewPreview extends Camera2.Preview{
 
 			@Override
 			public void surfaceDestroyed(@NonNull SurfaceHolder surfaceHolder) {
-				Log.e("TEMP", "DEBUG SurfaceHolder.Callback surfaceDestroyed");
+				Logger.d(TAG, "SurfaceHolder.Callback surfaceDestroyed");
 				exists = false;
 				stateCallbacks.onSurfaceDestroyed(SurfaceViewPreview.this);
 			}
@@ -57,6 +58,12 @@ public class SurfaceViewPreview extends Camera2.Preview{
 		return size;
 	};
 
+	@Override
+	public void setSize(@NonNull Size size){
+		this.size = size;
+		surfaceView.setClipBounds(new Rect(0, 0, size.getWidth(), size.getHeight()));
+	}
+
 	@Override
 	public Surface getSurface(){
 		return surfaceView.getHolder().getSurface();
@@ -0,0 +1,165 @@
+package ru.pronetcom.camerapreview2;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.util.Size;
+import android.view.Display;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Preview drawn into a TextureView. Aspect fit or crop and display rotation are done with the
+ * view transform, so resizing or rotating never recreates the surface or restarts the stream.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class TextureViewPreview extends Camera2.Preview{
+	private static final String TAG = "TextureViewPreview";
+
+	private final TextureView textureView;
+	private final boolean fit;
+	private Size size;
+
+	private Surface surface = null;
+	// camera stream size as the sensor produces it
+	private Size bufferSize = null;
+
+	public TextureViewPreview(@NonNull TextureView textureView, @NonNull Size size, boolean fit){
+		this.textureView = textureView;
+		this.size = size;
+		this.fit = fit;
+
+		textureView.setLayoutParams(new FrameLayout.LayoutParams(size.getWidth(), size.getHeight()));
+		textureView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+			@Override
+			public void onLayoutChange(View view, int left, int top, int right, int bottom, int oldLeft, int oldTop, int oldRight, int oldBottom) {
+				updateTransform();
+			}
+		});
+		textureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+			@Override
+			public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
+				Logger.d(TAG, "SurfaceTextureListener onSurfaceTextureAvailable");
+				if(bufferSize != null) surfaceTexture.setDefaultBufferSize(bufferSize.getWidth(), bufferSize.getHeight());
+				surface = new Surface(surfaceTexture);
+				updateTransform();
+				if(isReady()) stateCallbacks.onSurfaceReady(TextureViewPreview.this);
+				stateCallbacks.onSurfaceCreated(TextureViewPreview.this);
+			}
+
+			@Override
+			public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
+				updateTransform();
+			}
+
+			@Override
+			public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surfaceTexture) {
+				Logger.d(TAG, "SurfaceTextureListener onSurfaceTextureDestroyed");
+				stateCallbacks.onSurfaceDestroyed(TextureViewPreview.this);
+				if(surface != null) surface.release();
+				surface = null;
+				return true;
+			}
+
+			@Override
+			public void onSurfaceTextureUpdated(@NonNull SurfaceTexture surfaceTexture) {}
+		});
+	}
+
+	@Override
+	public Size getSize(){
+		return size;
+	}
+
+	@Override
+	public void setSize(@NonNull Size size){
+		this.size = size;
+		// only the view is laid out again, the transform follows in onLayoutChange
+		textureView.setLayoutParams(new FrameLayout.LayoutParams(size.getWidth(), size.getHeight()));
+	}
+
+	@Override
+	public Surface getSurface(){
+		return surface;
+	}
+
+	@Override
+	public void setCameraSize(@NonNull Size cameraSize, boolean rotated){
+		boolean isReadyStart = isReady();
+		if(rotated){
+			bufferSize = new Size(cameraSize.getHeight(), cameraSize.getWidth());
+		} else {
+			bufferSize = cameraSize;
+		}
+
+		SurfaceTexture surfaceTexture = textureView.getSurfaceTexture();
+		if(surfaceTexture != null) surfaceTexture.setDefaultBufferSize(bufferSize.getWidth(), bufferSize.getHeight());
+		updateTransform();
+
+		if(!isReadyStart && isReady()) stateCallbacks.onSurfaceReady(this);
+	}
+
+	@Override
+	public Class getPreviewClass(){
+		return SurfaceTexture.class;
+	}
+
+	@Override
+	protected void onAddState(Camera2.PreviewStateCallback callback){
+		if(isReady()){
+			callback.onSurfaceReady(this);
+		}
+	}
+
+	private boolean isReady(){
+		return surface != null && bufferSize != null;
+	}
+
+	private void updateTransform(){
+		int viewWidth = textureView.getWidth();
+		int viewHeight = textureView.getHeight();
+		if(bufferSize == null || viewWidth == 0 || viewHeight == 0) return;
+
+		Display display = textureView.getDisplay();
+		int rotation = display != null ? display.getRotation() : Surface.ROTATION_0;
+
+		Matrix matrix = new Matrix();
+		RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
+		float centerX = viewRect.centerX();
+		float centerY = viewRect.centerY();
+
+		if(rotation == Surface.ROTATION_90 || rotation == Surface.ROTATION_270){
+			// the texture is laid out for the natural orientation, map it back onto the view and rotate
+			RectF bufferRect = new RectF(0, 0, bufferSize.getHeight(), bufferSize.getWidth());
+			bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
+			matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
+			float scale = scale((float) viewHeight / bufferSize.getHeight(), (float) viewWidth / bufferSize.getWidth());
+			matrix.postScale(scale, scale, centerX, centerY);
+			matrix.postRotate(90 * (rotation - 2), centerX, centerY);
+		} else {
+			// the texture is stretched over the view, undo the stretch and scale it as a whole.
+			// The display may have turned since the camera opened, so its orientation is taken from now.
+			int rotateOrientation = Math.abs(sensorOrientation - rotation * 90);
+			Size cameraSize = rotateOrientation == 90 || rotateOrientation == 270
+				? new Size(bufferSize.getHeight(), bufferSize.getWidth())
+				: bufferSize;
+			float scaleX = (float) viewWidth / cameraSize.getWidth();
+			float scaleY = (float) viewHeight / cameraSize.getHeight();
+			float scale = scale(scaleX, scaleY);
+			matrix.setScale(scale / scaleX, scale / scaleY, centerX, centerY);
+			if(rotation == Surface.ROTATION_180) matrix.postRotate(180, centerX, centerY);
+		}
+
+		textureView.setTransform(matrix);
+	}
+
+	private float scale(float scaleX, float scaleY){
+		return fit ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+	}
+}
@@ -0,0 +1,77 @@
+package ru.pronetcom.camerapreview2;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Copy of a YUV_420_888 image. Taking it is only a bulk copy of the planes, so the image can go
+ * back to its reader right away; interleaving and JPEG encoding happen later on a worker.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class YuvFrame {
+	public final int width;
+	public final int height;
+
+	private final byte[][] planes = new byte[3][];
+	private final int[] rowStrides = new int[3];
+	private final int[] pixelStrides = new int[3];
+
+	public YuvFrame(@NonNull Image image){
+		width = image.getWidth();
+		height = image.getHeight();
+
+		Image.Plane[] imagePlanes = image.getPlanes();
+		for(int i = 0; i < 3; i++){
+			ByteBuffer buffer = imagePlanes[i].getBuffer();
+			planes[i] = new byte[buffer.remaining()];
+			buffer.get(planes[i]);
+			rowStrides[i] = imagePlanes[i].getRowStride();
+			pixelStrides[i] = imagePlanes[i].getPixelStride();
+		}
+	}
+
+	public byte[] toNv21(){
+		int chromaWidth = width / 2;
+		int chromaHeight = height / 2;
+		byte[] nv21 = new byte[width * height + chromaWidth * chromaHeight * 2];
+
+		int offset = 0;
+		for(int row = 0; row < height; row++){
+			int rowStart = row * rowStrides[0];
+			if(pixelStrides[0] == 1){
+				System.arraycopy(planes[0], rowStart, nv21, offset, width);
+				offset += width;
+			} else {
+				for(int col = 0; col < width; col++){
+					nv21[offset++] = planes[0][rowStart + col * pixelStrides[0]];
+				}
+			}
+		}
+
+		for(int row = 0; row < chromaHeight; row++){
+			for(int col = 0; col < chromaWidth; col++){
+				nv21[offset++] = planes[2][row * rowStrides[2] + col * pixelStrides[2]];
+				nv21[offset++] = planes[1][row * rowStrides[1] + col * pixelStrides[1]];
+			}
+		}
+
+		return nv21;
+	}
+
+	public byte[] toJpeg(int quality){
+		YuvImage yuvImage = new YuvImage(toNv21(), ImageFormat.NV21, width, height, null);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+
+		return out.toByteArray();
+	}
+}
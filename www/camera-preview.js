@@ -14,4 +14,98 @@ CameraPreview2.prototype.tmp=function(action, successCallback, errorCallback){
 	exec(successCallback, errorCallback, 'CameraPreview2', action);
 };
 
+/**
+ * @param {Object} [options]
+ * @param {number} [options.maxEdge] longest edge of the written picture in pixels
+ * @param {{width: number, height: number}} [options.targetSize] bounding box of the written picture in pixels,
+ *        in display orientation like getSupportedSizes. The file itself stays in sensor orientation,
+ *        so the returned width and height may be swapped against the box.
+ * @param {number} [options.quality] JPEG quality of a downscaled picture, 1-100
+ * @param {boolean} [options.keepOriginal] also write the full size picture, returned as originalPath
+ * @param {number} [options.pictureWidth] still output to switch to before this shot, with pictureHeight,
+ *        see setPictureSize. The switch persists, later shots without a size keep using it.
+ * @param {number} [options.pictureHeight]
+ * @param {Object} [options.qualityGate] reject the shot without writing it when a score is out of range,
+ *        needs startCamera with qualityAnalysis: true, otherwise every shot fails with QUALITY_ANALYSIS_DISABLED_ERROR
+ * @param {number} [options.qualityGate.minSharpness] minimum Laplacian variance
+ * @param {number} [options.qualityGate.minLuma] minimum mean luma, 0-255
+ * @param {number} [options.qualityGate.maxLuma] maximum mean luma, 0-255
+ * @param {number} [options.qualityGate.maxClipped] maximum share of black or white pixels, 0-1
+ *
+ * Resolves to {path, width, height, ...}. Called through exec without options it resolves
+ * to the bare path as it used to.
+ *
+ * Errors are {code, message}, a shot rejected by qualityGate carries its quality as well.
+ */
+CameraPreview2.prototype.takePicture=function(options, successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'takePicture', [options || {}]);
+};
+
+/**
+ * Returns the next preview frame as a JPEG, needs startCamera with snapshot: true.
+ * The frame comes from the running preview stream, so it arrives within about one frame interval.
+ * A camera that can not stream the snapshot output even with a single picture size drops it, the
+ * event callback gets an error with SNAPSHOT_DISABLED_ERROR and takeSnapshot rejects with that code.
+ * Quality analysis is dropped the same way next, reported as QUALITY_ANALYSIS_DISABLED_ERROR.
+ * A failed setPictureSize on a running camera never drops them, the previous picture size is restored.
+ * Takes the same options as takePicture except the picture size, the frame has the preview stream size.
+ * Both resolve to {path, width, height, latency: {capture, total}, quality?}, latencies in ms.
+ */
+CameraPreview2.prototype.takeSnapshot=function(options, successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'takeSnapshot', [options || {}]);
+};
+
+/**
+ * Subscribes to camera events, replaces the previous subscriber.
+ * Events are {type, code?, message?, timestamp, dropped?}. Lifecycle events always go through.
+ * "error" and "captureFailed" events of the same code are sent at most once per 250ms, the last
+ * one held back is sent when the interval ends with dropped counting the ones it replaced.
+ */
+CameraPreview2.prototype.setEventCallback=function(eventCallback, errorCallback){
+	exec(eventCallback, errorCallback, 'CameraPreview2', 'setEventCallback', []);
+};
+
+/**
+ * Safe to call on every gesture event, the preview applies only the latest values once per frame.
+ * Pictures are taken with the same zoom and flash state.
+ *
+ * @param {Object} controls
+ * @param {number} [controls.zoom] zoom ratio, clamped to [minZoom, maxZoom]
+ * @param {boolean} [controls.torch]
+ * @param {string} [controls.flash] "off", "on" or "auto"
+ */
+CameraPreview2.prototype.setPreviewControls=function(controls, successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'setPreviewControls', [controls || {}]);
+};
+
+/**
+ * Resolves to {zoom, minZoom, maxZoom, torch, flash, hasFlash}.
+ */
+CameraPreview2.prototype.getPreviewControls=function(successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'getPreviewControls', []);
+};
+
+/**
+ * Switches the still output of a started camera, in pixels as returned by getSupportedSizes.
+ * Sizes passed to startCamera as pictureSizes are switched to without reconfiguring the session,
+ * others reconfigure it in place while the camera stays open. Resolves once the new output is usable.
+ * Fails with UNSUPPORTED_SIZE_ERROR for a size the camera has no JPEG output for, and with
+ * SESSION_CONFIGURATION_ERROR if the hardware rejects the outputs, the previous size stays active then.
+ *
+ * @param {{width: number, height: number}} size
+ */
+CameraPreview2.prototype.setPictureSize=function(size, successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'setPictureSize', [size]);
+};
+
+/**
+ * Moves and resizes a started preview, same units as startCamera. With previewType: "texture"
+ * the camera stream is not interrupted.
+ *
+ * @param {{x: number, y: number, width: number, height: number}} bounds
+ */
+CameraPreview2.prototype.setPreviewBounds=function(bounds, successCallback, errorCallback){
+	exec(successCallback, errorCallback, 'CameraPreview2', 'setPreviewBounds', [bounds || {}]);
+};
+
 module.exports = new CameraPreview2();
\ No newline at end of file